@@ -0,0 +1,95 @@
+/*
+    This file is part of Nephren.
+
+    ContentDecoder.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// 依照 Content-Encoding 以串流方式解壓縮
+public class ContentDecoder {
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final int BUFFER_SIZE = 65536;
+
+    private ContentDecoder() {
+    }
+
+    public static InputStream decode(@NotNull InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        return switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+            case "", "identity" -> in;
+            case "gzip", "x-gzip" -> new GZIPInputStream(in, BUFFER_SIZE);
+            case "deflate" -> inflate(in);
+            default -> throw new IOException("unsupported Content-Encoding: " + encoding);
+        };
+    }
+
+    // deflate 依規範應有 zlib 標頭，但有些伺服器送出原始 deflate，看前兩個 byte 判斷
+    private static InputStream inflate(@NotNull InputStream in) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in, BUFFER_SIZE);
+        bis.mark(2);
+        int cmf = bis.read();
+        int flg = bis.read();
+        bis.reset();
+        boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(bis, new Inflater(!zlib), BUFFER_SIZE);
+    }
+
+    // 計算實際從網路讀到的 byte 數
+    public static InputStream counting(@NotNull InputStream in, @NotNull LongConsumer counter) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    counter.accept(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    counter.accept(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                counter.accept(skipped);
+                return skipped;
+            }
+        };
+    }
+}
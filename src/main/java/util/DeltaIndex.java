@@ -0,0 +1,203 @@
+/*
+    This file is part of Nephren.
+
+    DeltaIndex.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+    新版檔案的區塊校驗索引 (sidecar)，格式為純文字：
+        Nephren-Delta: 1
+        Length: <檔案大小>
+        Blocksize: <區塊大小>
+        <弱校驗和 16 進制> <MD5 16 進制>   (每個區塊一行)
+    最後一個區塊不足 Blocksize 時以 0 補齊後再計算。
+ */
+public class DeltaIndex {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final String MAGIC = "Nephren-Delta: 1";
+    // MD5 長度 (bytes)
+    private static final int STRONG_SUM_LENGTH = 16;
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int TAG_SIZE = 1 << 16;
+    private final long length;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+    // 弱校驗和 -> 區塊編號，用來快速比對
+    private final Map<Integer, List<Integer>> weakLookup = new HashMap<>();
+    // 與 rsync 相同，先以 16 位元的 tag 過濾，大部分位置不必裝箱查 Map
+    private final BitSet tags = new BitSet(TAG_SIZE);
+
+    private DeltaIndex(long length, int blockSize, int[] weak, byte[][] strong) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+        for (int i = 0; i < weak.length; i++) {
+            weakLookup.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+            tags.set(tag(weak[i]));
+        }
+    }
+
+    // 由檔案產生索引，提供給發佈端使用
+    public static DeltaIndex generate(@NotNull Path file, int blockSize) throws IOException {
+        long length = Files.size(file);
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            byte[] block = new byte[blockSize];
+            for (int i = 0; i < blocks; i++) {
+                int read = in.readNBytes(block, 0, blockSize);
+                Arrays.fill(block, read, blockSize, (byte) 0);
+                weak[i] = RollingChecksum.of(block, 0, blockSize, blockSize);
+                strong[i] = strongSum(block, 0, blockSize);
+            }
+        }
+        return new DeltaIndex(length, blockSize, weak, strong);
+    }
+
+    // 格式錯誤一律轉成 IOException，讓呼叫端改回完整下載
+    public static DeltaIndex load(@NotNull InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.US_ASCII));
+        if (!MAGIC.equals(reader.readLine())) {
+            throw new IOException("not a delta index");
+        }
+        try {
+            long length = Long.parseLong(headerValue(reader.readLine(), "Length"));
+            int blockSize = Integer.parseInt(headerValue(reader.readLine(), "Blocksize"));
+            if (length < 0 || blockSize <= 0) {
+                throw new IOException("invalid delta index header");
+            }
+            long blockCount = length / blockSize + (length % blockSize != 0 ? 1 : 0);
+            if (blockCount > Integer.MAX_VALUE - 8) {
+                throw new IOException("too many blocks in delta index: " + blockCount);
+            }
+            int blocks = (int) blockCount;
+            // 依實際讀到的行數擴充，避免錯誤的標頭一次配置過大的陣列
+            int[] weak = new int[Math.min(blocks, INITIAL_CAPACITY)];
+            byte[][] strong = new byte[weak.length][];
+            for (int i = 0; i < blocks; i++) {
+                if (i == weak.length) {
+                    int capacity = (int) Math.min(blocks, (long) weak.length * 2);
+                    weak = Arrays.copyOf(weak, capacity);
+                    strong = Arrays.copyOf(strong, capacity);
+                }
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("truncated delta index");
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 2 || fields[1].length() != STRONG_SUM_LENGTH * 2) {
+                    throw new IOException("malformed delta index line " + (i + 4));
+                }
+                weak[i] = Integer.parseUnsignedInt(fields[0], 16);
+                strong[i] = HexFormat.of().parseHex(fields[1]);
+            }
+            return new DeltaIndex(length, blockSize, weak, strong);
+        } catch (IllegalArgumentException ex) {
+            // 包含 NumberFormatException 與 parseHex 的錯誤
+            throw new IOException("malformed delta index", ex);
+        }
+    }
+
+    private static String headerValue(String line, @NotNull String name) throws IOException {
+        if (line == null || !StringUtil.startsWithIgnoreCase(line, name + ":")) {
+            throw new IOException("missing " + name + " in delta index");
+        }
+        return line.substring(name.length() + 1).trim();
+    }
+
+    private static int tag(int weakSum) {
+        return ((weakSum & 0xffff) + (weakSum >>> 16)) & 0xffff;
+    }
+
+    static byte[] strongSum(byte[] block, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(block, offset, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+        writer.write(MAGIC + "\n");
+        writer.write("Length: " + length + "\n");
+        writer.write("Blocksize: " + blockSize + "\n");
+        for (int i = 0; i < weak.length; i++) {
+            writer.write(String.format("%08x %s\n", weak[i], HexFormat.of().formatHex(strong[i])));
+        }
+        writer.flush();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    // 區塊在新版檔案中的實際長度（最後一塊可能較短）
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, length - (long) block * blockSize);
+    }
+
+    public List<Integer> candidates(int weakSum) {
+        if (!tags.get(tag(weakSum))) {
+            return List.of();
+        }
+        return weakLookup.getOrDefault(weakSum, List.of());
+    }
+
+    public boolean matches(int block, byte[] strongSum) {
+        return Arrays.equals(strong[block], strongSum);
+    }
+
+    // 產生 sidecar：java util.DeltaIndex <檔案> [區塊大小]，輸出為 <檔案>.delta
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: DeltaIndex <file> [blocksize]");
+            return;
+        }
+        Path file = Path.of(args[0]);
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+        try (OutputStream out = Files.newOutputStream(Path.of(args[0] + ".delta"))) {
+            generate(file, blockSize).writeTo(out);
+        }
+    }
+}
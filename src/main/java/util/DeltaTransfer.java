@@ -0,0 +1,376 @@
+/*
+    This file is part of Nephren.
+
+    DeltaTransfer.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 依照區塊索引，從舊版檔案複製相同的區塊，只用 Range 請求下載有變動的部分
+public class DeltaTransfer {
+    // 一次 multi-range 請求最多合併的範圍數，避免 Header 過長
+    private static final int MAX_RANGES_PER_REQUEST = 16;
+    private static final int MAX_BUFFER_SIZE = 65536;
+    private static final Pattern CONTENT_RANGE =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BOUNDARY =
+            Pattern.compile("boundary=\"?([^\";]+)\"?", Pattern.CASE_INSENSITIVE);
+    private final HttpClient client;
+    private final URI uri;
+    private final DeltaIndex index;
+    private final RandomAccessFile target;
+    private final LongConsumer progress;
+    private final BooleanSupplier running;
+    // 已經寫入目標檔的區塊
+    private final BitSet present;
+    private boolean multiRange = true;
+
+    public DeltaTransfer(HttpClient client, URI uri, DeltaIndex index, RandomAccessFile target,
+                         LongConsumer progress, BooleanSupplier running) {
+        this(client, uri, index, target, new BitSet(index.getBlockCount()), progress, running);
+    }
+
+    // present 為目標檔中已完成的區塊，暫停後繼續時沿用，不必重新下載
+    public DeltaTransfer(HttpClient client, URI uri, DeltaIndex index, RandomAccessFile target,
+                         BitSet present, LongConsumer progress, BooleanSupplier running) {
+        this.client = client;
+        this.uri = uri;
+        this.index = index;
+        this.target = target;
+        this.progress = progress;
+        this.running = running;
+        this.present = present;
+    }
+
+    // 以滾動校驗和掃描舊版檔案，把吻合的區塊直接寫到目標檔
+    public void copyFromSeed(@NotNull Path seed) throws IOException {
+        int blockSize = index.getBlockSize();
+        int blockCount = index.getBlockCount();
+        if (blockCount == 0 || !Files.isReadable(seed)) {
+            return;
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try (SeedReader reader = new SeedReader(Files.newInputStream(seed), blockSize)) {
+            // 環狀視窗，start 為視窗中最舊 byte 的位置
+            byte[] window = new byte[blockSize];
+            byte[] block = new byte[blockSize];
+            if (!reader.fill(window)) {
+                return;
+            }
+            int start = 0;
+            int matchedBlocks = present.cardinality();
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            checksum.reset(window, 0, blockSize);
+
+            while (matchedBlocks < blockCount && running.getAsBoolean()) {
+                List<Integer> candidates = index.candidates(checksum.value());
+                boolean matched = false;
+                if (!candidates.isEmpty()) {
+                    // 把環狀視窗攤平後計算強校驗和
+                    System.arraycopy(window, start, block, 0, blockSize - start);
+                    System.arraycopy(window, 0, block, blockSize - start, start);
+                    md.update(block, 0, blockSize);
+                    byte[] strongSum = md.digest();
+                    for (int candidate : candidates) {
+                        if (!present.get(candidate) && index.matches(candidate, strongSum)) {
+                            int length = index.getBlockLength(candidate);
+                            target.seek((long) candidate * blockSize);
+                            target.write(block, 0, length);
+                            present.set(candidate);
+                            matchedBlocks++;
+                            progress.accept(length);
+                            matched = true;
+                        }
+                    }
+                }
+                if (matched) {
+                    // 吻合時整塊跳過，重新填滿視窗
+                    if (!reader.fill(window)) {
+                        break;
+                    }
+                    start = 0;
+                    checksum.reset(window, 0, blockSize);
+                } else {
+                    int next = reader.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    checksum.roll(window[start], (byte) next);
+                    window[start] = (byte) next;
+                    start = (start + 1) % blockSize;
+                }
+            }
+        }
+    }
+
+    // 以 Range 請求補齊其餘區塊，回傳是否全部完成
+    public boolean fetchMissing() throws IOException {
+        Deque<long[]> pending = new ArrayDeque<>(missingRanges());
+        while (!pending.isEmpty() && running.getAsBoolean()) {
+            List<long[]> batch = new ArrayList<>();
+            int limit = multiRange ? MAX_RANGES_PER_REQUEST : 1;
+            while (!pending.isEmpty() && batch.size() < limit) {
+                batch.add(pending.poll());
+            }
+            if (fetch(batch)) {
+                return true;
+            }
+            List<long[]> omitted = new ArrayList<>();
+            for (long[] range : batch) {
+                if (!covered(range)) {
+                    omitted.add(range);
+                }
+            }
+            if (omitted.isEmpty()) {
+                continue;
+            }
+            // 單一範圍請求仍沒有回傳就放棄
+            if (batch.size() == 1) {
+                throw new IOException("server did not return range "
+                        + batch.get(0)[0] + "-" + batch.get(0)[1]);
+            }
+            // 有些伺服器只回傳 multi-range 的第一段，其餘範圍依原順序改成單一範圍請求重試
+            multiRange = false;
+            for (int i = omitted.size() - 1; i >= 0; i--) {
+                pending.addFirst(omitted.get(i));
+            }
+        }
+        return present.cardinality() == index.getBlockCount();
+    }
+
+    // 將連續缺少的區塊合併成 [開始, 結束] 位元組範圍
+    private List<long[]> missingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        int blockSize = index.getBlockSize();
+        int block = present.nextClearBit(0);
+        while (block < index.getBlockCount()) {
+            int next = present.nextSetBit(block);
+            int end = next < 0 ? index.getBlockCount() : next;
+            ranges.add(new long[]{(long) block * blockSize,
+                    Math.min((long) end * blockSize, index.getLength()) - 1});
+            block = present.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    private boolean covered(long[] range) {
+        int blockSize = index.getBlockSize();
+        int from = (int) (range[0] / blockSize);
+        int to = (int) (range[1] / blockSize);
+        return present.nextClearBit(from) > to;
+    }
+
+    // 送出一次請求，回傳 true 代表伺服器直接回傳了完整檔案
+    private boolean fetch(@NotNull List<long[]> batch) throws IOException {
+        StringBuilder rangeHeader = new StringBuilder("bytes=");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                rangeHeader.append(',');
+            }
+            rangeHeader.append(batch.get(i)[0]).append('-').append(batch.get(i)[1]);
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(uri)
+                .version(HttpClient.Version.HTTP_2)
+                .header("Range", rangeHeader.toString())
+                .build();
+        HttpResponse<InputStream> response =
+                client.sendAsync(request, BodyHandlers.ofInputStream()).join();
+
+        try (InputStream body = new BufferedInputStream(response.body(), MAX_BUFFER_SIZE)) {
+            if (response.statusCode() == 200) {
+                // 不支援 Range，整個檔案照原樣寫入
+                writeRange(body, 0, index.getLength() - 1);
+                return true;
+            }
+            if (response.statusCode() != 206) {
+                throw new IOException("unexpected status " + response.statusCode());
+            }
+            String contentType = response.headers().firstValue("Content-Type").orElse("");
+            Matcher boundary = BOUNDARY.matcher(contentType);
+            if (StringUtil.startsWithIgnoreCase(contentType, "multipart/byteranges") && boundary.find()) {
+                readMultipart(body, boundary.group(1));
+            } else {
+                long[] range = parseContentRange(
+                        response.headers().firstValue("Content-Range").orElse(""));
+                writeRange(body, range[0], range[1]);
+            }
+        }
+        return false;
+    }
+
+    private void readMultipart(InputStream body, @NotNull String boundary) throws IOException {
+        String delimiter = "--" + boundary;
+        String line;
+        while ((line = readLine(body)) != null) {
+            if (line.equals(delimiter + "--")) {
+                break;
+            }
+            if (!line.equals(delimiter)) {
+                continue;
+            }
+            long[] range = null;
+            while ((line = readLine(body)) != null && !line.isEmpty()) {
+                if (StringUtil.startsWithIgnoreCase(line, "Content-Range:")) {
+                    range = parseContentRange(line.substring("Content-Range:".length()));
+                }
+            }
+            if (range == null) {
+                throw new IOException("multipart part without Content-Range");
+            }
+            writeRange(body, range[0], range[1]);
+        }
+    }
+
+    private long[] parseContentRange(@NotNull String value) throws IOException {
+        Matcher matcher = CONTENT_RANGE.matcher(value.trim());
+        if (!matcher.find()) {
+            throw new IOException("invalid Content-Range: " + value);
+        }
+        return new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+    }
+
+    // 將 [first, last] 範圍寫入目標檔，只有完整收到的區塊才標記為已完成
+    private void writeRange(InputStream body, long first, long last) throws IOException {
+        int blockSize = index.getBlockSize();
+        byte[] buffer = new byte[MAX_BUFFER_SIZE];
+        long position = first;
+        target.seek(first);
+        // 第一個從 first 之後開始的區塊
+        long nextBlock = (first + blockSize - 1) / blockSize;
+        while (position <= last) {
+            int read = body.read(buffer, 0, (int) Math.min(buffer.length, last - position + 1));
+            if (read <= 0) {
+                throw new IOException("range ended early at " + position);
+            }
+            target.write(buffer, 0, read);
+            position += read;
+            long counted = 0;
+            while (nextBlock < index.getBlockCount()
+                    && nextBlock * blockSize + index.getBlockLength((int) nextBlock) <= position) {
+                if (!present.get((int) nextBlock)) {
+                    present.set((int) nextBlock);
+                    counted += index.getBlockLength((int) nextBlock);
+                }
+                nextBlock++;
+            }
+            if (counted > 0) {
+                progress.accept(counted);
+            }
+        }
+    }
+
+    /*
+        以區塊讀取舊版檔案，逐 byte 取出；檔案結束後再補上 blockSize - 1 個 0，
+        讓視窗可以滑過檔案結尾，比對以 0 補齊的最後一個區塊
+     */
+    private static final class SeedReader implements AutoCloseable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[MAX_BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private int padding;
+        private boolean eof;
+
+        private SeedReader(InputStream in, int blockSize) {
+            this.in = in;
+            this.padding = blockSize - 1;
+        }
+
+        private int read() throws IOException {
+            if (position == limit && !eof) {
+                limit = Math.max(in.read(buffer), 0);
+                position = 0;
+                eof = limit == 0;
+            }
+            if (position < limit) {
+                return buffer[position++] & 0xff;
+            }
+            if (padding > 0) {
+                padding--;
+                return 0;
+            }
+            return -1;
+        }
+
+        // 填滿整個視窗，不足時回傳 false
+        private boolean fill(byte[] window) throws IOException {
+            for (int i = 0; i < window.length; i++) {
+                int b = read();
+                if (b < 0) {
+                    return false;
+                }
+                window[i] = (byte) b;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+}
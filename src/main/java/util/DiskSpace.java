@@ -0,0 +1,136 @@
+/*
+    This file is part of Nephren.
+
+    DiskSpace.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    下載前先預留磁碟空間，空間不足的下載排隊等待，不會開始傳輸
+    預先 setLength 的檔案多半是稀疏檔，實際上不佔空間，所以由這裡計算尚未寫入的部分
+ */
+public class DiskSpace {
+    // 保留給系統的空間 (64 MiB)
+    private static final long MARGIN = 64L << 20;
+    private static final Path DOWNLOAD_DIR = Paths.get("Download/");
+    // 進行中的下載 -> 預留的檔案大小
+    private static final Map<HttpDownload, Long> reserved = new LinkedHashMap<>();
+    // 等待空間的下載 -> 需要的檔案大小，依加入順序
+    private static final Map<HttpDownload, Long> waiting = new LinkedHashMap<>();
+    // 快取的剩餘空間最多沿用多久 (ns)，過期就重新查詢，才看得到其他程式用掉的空間
+    private static final long BUDGET_TTL = 1_000_000_000L;
+    // 上次查詢後還能分配的空間，預留時直接扣除；不夠或過期才重新查詢磁碟
+    private static long budget;
+    private static long budgetTime;
+
+    private DiskSpace() {
+    }
+
+    // 預留 size 大小的空間，不夠時加入等待並回傳 false；已有預留時改成新的大小
+    public static synchronized boolean reserve(@NotNull HttpDownload download, long size) {
+        Long previous = reserved.remove(download);
+        if (previous != null) {
+            // 退回原本預留但還沒寫入的部分，避免同一段空間被扣兩次
+            budget += Math.max(0, previous - download.getDownloaded());
+        }
+        long need = size - download.getDownloaded();
+        if (size > 0 && (need > budget || System.nanoTime() - budgetTime > BUDGET_TTL)) {
+            sync();
+        }
+        if (size <= 0 || need <= budget) {
+            budget -= Math.max(0, need);
+            waiting.remove(download);
+            reserved.put(download, size);
+            return true;
+        }
+        waiting.putIfAbsent(download, size);
+        return false;
+    }
+
+    public static synchronized boolean isReserved(@NotNull HttpDownload download) {
+        return reserved.containsKey(download);
+    }
+
+    // 下載結束或取消時釋放，並喚醒放得下的等待中下載
+    public static void release(@NotNull HttpDownload download) {
+        List<HttpDownload> ready = new ArrayList<>();
+        synchronized (DiskSpace.class) {
+            reserved.remove(download);
+            waiting.remove(download);
+            // 每次釋放只查詢一次磁碟，之後依序扣除
+            if (!waiting.isEmpty()) {
+                sync();
+            }
+            Iterator<Map.Entry<HttpDownload, Long>> it = waiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<HttpDownload, Long> entry = it.next();
+                // 排隊後被暫停或取消的不再等待，否則會留下沒人使用的預留；
+                // DOWNLOADING 代表剛加入、還沒切換成 QUEUED，留到下次
+                HttpDownload.Statuses status = entry.getKey().getStatus();
+                if (status != HttpDownload.Statuses.QUEUED) {
+                    if (status != HttpDownload.Statuses.DOWNLOADING) {
+                        it.remove();
+                    }
+                    continue;
+                }
+                long need = entry.getValue() - entry.getKey().getDownloaded();
+                if (need <= budget) {
+                    budget -= Math.max(0, need);
+                    // 先幫它預留，避免後面的下載搶走空間
+                    reserved.put(entry.getKey(), entry.getValue());
+                    ready.add(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+        ready.forEach(HttpDownload::onSpaceAvailable);
+    }
+
+    private static void sync() {
+        budget = available();
+        budgetTime = System.nanoTime();
+    }
+
+    // 可用空間扣掉已預留但還沒寫入的部分
+    private static long available() {
+        long usable;
+        try {
+            usable = Files.getFileStore(DOWNLOAD_DIR).getUsableSpace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return Long.MAX_VALUE;
+        }
+        long outstanding = 0;
+        for (Map.Entry<HttpDownload, Long> entry : reserved.entrySet()) {
+            outstanding += Math.max(0, entry.getValue() - entry.getKey().getDownloaded());
+        }
+        return usable - outstanding - MARGIN;
+    }
+}
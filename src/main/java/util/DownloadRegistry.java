@@ -0,0 +1,139 @@
+/*
+    This file is part of Nephren.
+
+    DownloadRegistry.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 記錄進行中的下載，並分配不會互相衝突的目標檔名
+public class DownloadRegistry {
+    public static final String PART_SUFFIX = ".part";
+    private static final Path DOWNLOAD_DIR = Paths.get("Download/");
+    // 正規化網址 + Hash -> 進行中的下載
+    private static final Map<String, HttpDownload> inFlight = new ConcurrentHashMap<>();
+    // 已分配給進行中下載的目標檔
+    private static final Set<Path> reserved = ConcurrentHashMap.newKeySet();
+
+    private DownloadRegistry() {
+    }
+
+    // 相同網址與 Hash 的下載若仍在進行，直接共用；否則建立新的下載
+    public static HttpDownload acquire(@NotNull URI uri, @NotNull String hashAlgor, @NotNull String hash) {
+        return acquire(uri, hashAlgor, hash, -1L);
+    }
+
+    // sizeHint 為清單提供的檔案大小，-1 代表未知
+    public static HttpDownload acquire(@NotNull URI uri, @NotNull String hashAlgor, @NotNull String hash,
+                                       long sizeHint) {
+        return acquire(uri, hashAlgor, hash, sizeHint, null, null);
+    }
+
+    // seed 與 deltaIndex 都有值時以差異下載進行
+    public static HttpDownload acquire(@NotNull URI uri, @NotNull String hashAlgor, @NotNull String hash,
+                                       long sizeHint, Path seed, URI deltaIndex) {
+        return inFlight.compute(key(uri, hashAlgor, hash), (k, existing) ->
+                existing != null && existing.isInFlight() ?
+                        existing : new HttpDownload(uri, hashAlgor, hash, seed, deltaIndex, sizeHint));
+    }
+
+    // 重新開始的下載再次登記；已有其他進行中的相同下載時保留原本的
+    public static void register(@NotNull HttpDownload download) {
+        inFlight.compute(download.getKey(), (k, existing) ->
+                existing != null && existing != download && existing.isInFlight() ?
+                        existing : download);
+        reserved.add(download.getTarget());
+    }
+
+    public static void release(@NotNull HttpDownload download) {
+        inFlight.remove(download.getKey(), download);
+        reserved.remove(download.getTarget());
+    }
+
+    public static String key(@NotNull URI uri, @NotNull String hashAlgor, @NotNull String hash) {
+        URI normalized = uri.normalize();
+        String scheme = normalized.getScheme().toLowerCase(Locale.ROOT);
+        String host = normalized.getHost() == null ?
+                "" : normalized.getHost().toLowerCase(Locale.ROOT);
+        int port = normalized.getPort();
+        // 省略預設連接埠
+        if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443)) {
+            port = -1;
+        }
+        String path = normalized.getRawPath() == null || normalized.getRawPath().isEmpty() ?
+                "/" : normalized.getRawPath();
+        String query = normalized.getRawQuery() == null ? "" : "?" + normalized.getRawQuery();
+        String digest = hash.isEmpty() ?
+                "" : hashAlgor.toUpperCase(Locale.ROOT) + ":" + hash.toLowerCase(Locale.ROOT);
+        return scheme + "://" + host + (port != -1 ? ":" + port : "") + path + query + " " + digest;
+    }
+
+    /*
+        分配目標檔名，重複時改成 "name (1).ext"、"name (2).ext"...
+        以原子方式建立 <目標檔>.part 暫存檔作為保留，下載完成後再更名
+     */
+    public static Path allocate(@NotNull URI uri) {
+        String fileName = fileName(uri);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String ext = dot > 0 ? fileName.substring(dot) : "";
+        for (int n = 0; ; n++) {
+            Path target = DOWNLOAD_DIR.resolve(n == 0 ? fileName : base + " (" + n + ")" + ext);
+            if (!reserved.add(target)) {
+                continue;
+            }
+            if (!Files.exists(target)) {
+                try {
+                    Files.createFile(partOf(target));
+                    return target;
+                } catch (FileAlreadyExistsException ignored) {
+                    // 其他程序正在使用這個名稱
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return target;
+                }
+            }
+            reserved.remove(target);
+        }
+    }
+
+    public static Path partOf(@NotNull Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+
+    // 取得 URI 裡的檔案名稱
+    private static String fileName(@NotNull URI uri) {
+        Path name = uri.getPath() == null ? null : Paths.get(uri.getPath()).getFileName();
+        if (name != null) {
+            return name.toString();
+        }
+        return uri.getHost() != null ? uri.getHost() : "download";
+    }
+}
@@ -23,6 +23,7 @@ package util;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
@@ -34,16 +35,25 @@ import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestException;
 import java.time.Duration;
+import java.util.BitSet;
 import java.util.Observable;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HttpDownload extends Observable implements Callable<URI> {
     // Buffer 最大 64 KiB
@@ -52,8 +62,17 @@ public class HttpDownload extends Observable implements Callable<URI> {
     // 無上限的執行緒池
     private static final ExecutorService executorService =
             Executors.newCachedThreadPool();
-    // 建立 HttpClient，預設使用 HTTP2
-    private final HttpClient client = HttpClient.newBuilder()
+    // 是否要求伺服器壓縮傳輸 (gzip, deflate)，預設關閉
+    private static final AtomicBoolean compression = new AtomicBoolean(false);
+    // 小於此大小的檔案整個放在記憶體，一次寫入 (256 KiB)
+    private static final int SMALL_FILE_SIZE = 262144;
+    // 同時進行的小檔案請求上限，其餘排隊；記憶體最多 MAX_SMALL_REQUESTS * SMALL_FILE_SIZE (8 MiB)，
+    // 也不會超過伺服器常見的 MAX_CONCURRENT_STREAMS (100)
+    private static final int MAX_SMALL_REQUESTS = 32;
+    private static final Semaphore smallPermits = new Semaphore(MAX_SMALL_REQUESTS);
+    private static final Queue<HttpDownload> smallQueue = new ConcurrentLinkedQueue<>();
+    // 所有下載共用同一個 HttpClient，預設使用 HTTP2，同一主機的請求可在同一條連線上多工
+    private static final HttpClient client = HttpClient.newBuilder()
             .version(HttpClient.Version.HTTP_2)
             .connectTimeout(Duration.ofSeconds(30))
             .priority(1)
@@ -65,7 +84,28 @@ public class HttpDownload extends Observable implements Callable<URI> {
     private final String hashAlgor;
     private final AtomicLong size = new AtomicLong();
     private final AtomicLong downloaded = new AtomicLong();
-    private Statuses status;
+    // 壓縮傳輸時 size、downloaded 為解碼後的大小，以下為網路上的大小
+    private final AtomicLong wireSize = new AtomicLong(-1L);
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicBoolean encoded = new AtomicBoolean();
+    private final boolean acceptEncoding;
+    // 清單提供的大小提示，-1 代表未知
+    private final AtomicLong sizeHint = new AtomicLong(-1L);
+    // 是否已在 smallQueue 中，暫停後馬上繼續時不會重複排入
+    private final AtomicBoolean smallQueued = new AtomicBoolean();
+    // 差異下載用的舊版檔案與區塊索引
+    private final Path seed;
+    private final URI deltaIndex;
+    private final AtomicBoolean delta = new AtomicBoolean();
+    // 差異下載的進度，暫停後繼續時沿用：索引、暫存檔中已完成的區塊、舊版檔案是否已掃描完
+    private final AtomicReference<DeltaIndex> loadedIndex = new AtomicReference<>();
+    private final AtomicReference<BitSet> deltaBlocks = new AtomicReference<>();
+    private final AtomicBoolean seeded = new AtomicBoolean();
+    // 下載中寫入暫存檔，完成後才更名為目標檔
+    private final String key;
+    private final Path target;
+    private final Path part;
+    private volatile Statuses status;
 
     static {
         try {
@@ -78,9 +118,23 @@ public class HttpDownload extends Observable implements Callable<URI> {
     }
 
     public HttpDownload(URI uri, String hashAlgor, String hash) {
+        this(uri, hashAlgor, hash, null, null, -1L);
+    }
+
+    // 差異下載：以 seed 為舊版檔案，依照 deltaIndex 只下載有變動的區塊；
+    // 由 DownloadRegistry 建立，重複的請求才能共用
+    HttpDownload(URI uri, String hashAlgor, String hash, Path seed, URI deltaIndex, long sizeHint) {
         this.uri = uri;
         this.hashAlgor = hashAlgor;
         this.hash = hash;
+        this.seed = seed;
+        this.deltaIndex = deltaIndex;
+        delta.set(seed != null && deltaIndex != null);
+        acceptEncoding = compression.get();
+        this.sizeHint.set(sizeHint);
+        key = DownloadRegistry.key(uri, hashAlgor, hash);
+        target = DownloadRegistry.allocate(uri);
+        part = DownloadRegistry.partOf(target);
         size.set(-1L);
         downloaded.set(0);
         status = Statuses.DOWNLOADING;
@@ -91,11 +145,29 @@ public class HttpDownload extends Observable implements Callable<URI> {
         return uri.toString();
     }
 
+    public static void setCompression(boolean enabled) {
+        compression.set(enabled);
+    }
+
+    // 解碼後的大小，壓縮傳輸完成前未知則為 -1
     public long getSize() {
         return size.get();
     }
 
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    // 實際從網路收到的 byte 數
+    public long getReceived() {
+        return received.get();
+    }
+
     public double getProgress() {
+        // 壓縮傳輸時解碼後大小未知，改用網路上的進度
+        if (encoded.get()) {
+            return wireSize.get() > 0 ? (received.doubleValue() / wireSize.doubleValue()) * 100 : 0;
+        }
         return (downloaded.doubleValue() / size.doubleValue()) * 100;
     }
 
@@ -103,16 +175,31 @@ public class HttpDownload extends Observable implements Callable<URI> {
         return status;
     }
 
-    // 取得 URI 裡的檔案名稱
-    private String getFileName(@NotNull URI uri) {
-        return "Download/" + Paths.get(uri.getPath()).getFileName().toString();
+    public String getKey() {
+        return key;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    // 仍在下載、暫停或排隊中的下載可以被重複的請求共用
+    public boolean isInFlight() {
+        return status == Statuses.DOWNLOADING || status == Statuses.PAUSED
+                || status == Statuses.QUEUED;
     }
 
     // 建立 HttpRequest
     private HttpRequest getHttpRequest(@NotNull URI uri) {
-        return HttpRequest.newBuilder()
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(uri)
-                .version(HttpClient.Version.HTTP_2)
+                .version(HttpClient.Version.HTTP_2);
+        // 壓縮後的內容無法對應到解碼後的位置，只在從頭下載時要求壓縮
+        if (acceptEncoding && downloaded.get() == 0) {
+            return builder.header("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING).build();
+        }
+        return builder
+                .header("Accept-Encoding", "identity")
                 // 設定下載範圍
                 .header("Range", "bytes=" + downloaded.get() + "-")
                 .build();
@@ -130,95 +217,362 @@ public class HttpDownload extends Observable implements Callable<URI> {
 
     public void onResume() {
         status = Statuses.DOWNLOADING;
+        // 錯誤後繼續時已從登記中移除，重新登記才能讓重複的請求共用
+        DownloadRegistry.register(this);
         stateChanged();
         download();
     }
 
     public void onCancel() {
         status = Statuses.CANCELLED;
+        // 先刪除暫存檔再釋放檔名，否則這個檔名會一直被佔用
+        deletePart();
+        DownloadRegistry.release(this);
+        DiskSpace.release(this);
         stateChanged();
     }
 
+    private void deletePart() {
+        deltaBlocks.set(null);
+        try {
+            Files.deleteIfExists(part);
+        } catch (IOException ex) {
+            // Windows 上檔案仍被開啟時無法刪除，由下載執行緒關檔後再刪
+            ex.printStackTrace();
+        }
+    }
+
     public void onError() {
         status = Statuses.ERROR;
+        DownloadRegistry.release(this);
+        DiskSpace.release(this);
         stateChanged();
     }
 
+    // 磁碟空間不足，等待其他下載釋出空間
+    public void onQueued() {
+        status = Statuses.QUEUED;
+        stateChanged();
+    }
+
+    public void onSpaceAvailable() {
+        if (status == Statuses.QUEUED) {
+            onResume();
+        }
+    }
+
     public void onComplete() {
         status = Statuses.COMPLETE;
         stateChanged();
     }
 
-    // 本類別包裝成 FutureTask，並送到執行緒池執行
+    // 本類別包裝成 FutureTask，並送到執行緒池執行；已知是小檔案則直接非同步下載
     private void download() {
+        if (!delta.get() && sizeHint.get() >= 0 && sizeHint.get() <= SMALL_FILE_SIZE) {
+            if (smallQueued.compareAndSet(false, true)) {
+                smallQueue.add(this);
+            }
+            dispatchSmall();
+            return;
+        }
         FutureTask<URI> future = new FutureTask<>(this);
         executorService.execute(future);
     }
 
+    // 有空出的名額就送出排隊中的小檔案請求
+    private static void dispatchSmall() {
+        while (!smallQueue.isEmpty() && smallPermits.tryAcquire()) {
+            HttpDownload next;
+            while ((next = smallQueue.poll()) != null) {
+                next.smallQueued.set(false);
+                // 排隊期間被暫停或取消的直接略過
+                if (next.status == Statuses.DOWNLOADING) {
+                    break;
+                }
+            }
+            if (next == null) {
+                smallPermits.release();
+            } else {
+                next.downloadSmall();
+            }
+        }
+    }
+
+    // 不佔用執行緒池，整個 Body 收進記憶體；實際大小超過時立刻取消，改走一般下載
+    // 呼叫前須先取得 smallPermits，完成後歸還
+    private void downloadSmall() {
+        HttpResponse.BodyHandler<byte[]> handler = SmallBodySubscriber.handler(SMALL_FILE_SIZE);
+        client.sendAsync(getHttpRequest(uri), handler).whenComplete((response, ex) -> {
+            try {
+                if (ex != null || response.statusCode() / 100 != 2) {
+                    onError();
+                    return;
+                }
+                byte[] body = response.body();
+                String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+                if (body != null) {
+                    received.set(body.length);
+                }
+                if (body != null && !encoding.equalsIgnoreCase("identity")) {
+                    // 解壓縮後一樣最多 SMALL_FILE_SIZE，超過就放棄
+                    try (InputStream in = ContentDecoder.decode(new ByteArrayInputStream(body), encoding)) {
+                        body = in.readNBytes(SMALL_FILE_SIZE + 1);
+                    }
+                    if (body.length > SMALL_FILE_SIZE) {
+                        body = null;
+                    }
+                }
+                if (body == null) {
+                    received.set(0);
+                    sizeHint.set(-1L);
+                    download();
+                } else {
+                    completeSmall(body);
+                }
+            } catch (IOException e) {
+                onError();
+                e.printStackTrace();
+            } finally {
+                smallPermits.release();
+                dispatchSmall();
+            }
+        });
+    }
+
+    // 小檔案一次寫入暫存檔，只通知一次
+    private void completeSmall(byte[] body) throws IOException {
+        if (status != Statuses.DOWNLOADING) {
+            return;
+        }
+        // call() 讀取前已經預留過，不再重複扣除
+        if (!DiskSpace.isReserved(this) && !DiskSpace.reserve(this, body.length)) {
+            onQueued();
+            return;
+        }
+        Files.write(part, body);
+        size.set(body.length);
+        downloaded.set(body.length);
+        finish(body);
+    }
+
+    // 讀取區塊索引，file:// 直接讀本機檔案
+    private DeltaIndex loadDeltaIndex() throws IOException {
+        if ("file".equalsIgnoreCase(deltaIndex.getScheme())) {
+            try (InputStream in = Files.newInputStream(Paths.get(deltaIndex))) {
+                return DeltaIndex.load(in);
+            }
+        }
+        HttpResponse<InputStream> response = client.sendAsync(
+                HttpRequest.newBuilder(deltaIndex).build(), BodyHandlers.ofInputStream()).join();
+        try (InputStream in = response.body()) {
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("couldn't fetch delta index: " + response.statusCode());
+            }
+            return DeltaIndex.load(in);
+        }
+    }
+
+    private URI callDelta() {
+        try {
+            DeltaIndex index = loadedIndex.get();
+            if (index == null) {
+                index = loadDeltaIndex();
+                loadedIndex.set(index);
+            }
+            // 暫存檔還在就沿用已完成的區塊，否則從頭開始
+            BitSet blocks = deltaBlocks.get();
+            if (blocks == null || !Files.exists(part)) {
+                blocks = new BitSet(index.getBlockCount());
+                deltaBlocks.set(blocks);
+                seeded.set(false);
+                downloaded.set(0);
+            }
+            size.set(index.getLength());
+            if (!DiskSpace.reserve(this, index.getLength())) {
+                onQueued();
+                return uri;
+            }
+            stateChanged();
+            boolean complete;
+            try (RandomAccessFile raf = new RandomAccessFile(part.toFile(), "rw")) {
+                raf.setLength(index.getLength());
+                DeltaTransfer transfer = new DeltaTransfer(client, uri, index, raf, blocks, read -> {
+                    downloaded.addAndGet(read);
+                    stateChanged();
+                }, () -> status == Statuses.DOWNLOADING);
+                // 先從舊版檔案複製相同區塊，再下載其餘部分；掃描完成後繼續時不再重掃
+                if (!seeded.get()) {
+                    transfer.copyFromSeed(seed);
+                    seeded.set(status == Statuses.DOWNLOADING);
+                }
+                complete = transfer.fetchMissing();
+            }
+            if (status == Statuses.CANCELLED) {
+                deletePart();
+            }
+            if (status == Statuses.DOWNLOADING) {
+                if (!complete) {
+                    throw new IOException("delta transfer left missing blocks");
+                }
+                finish(null);
+            }
+        } catch (IOException | CompletionException ex) {
+            // 差異下載失敗則改回完整下載
+            ex.printStackTrace();
+            delta.set(false);
+            size.set(-1L);
+            downloaded.set(0);
+            return call();
+        }
+        return uri;
+    }
+
+    // 如果有 Hash 值就校驗，並決定是否重載；通過後將暫存檔更名為目標檔
+    // content 為已在記憶體中的檔案內容，null 則從暫存檔讀出
+    private void finish(byte[] content) throws IOException {
+        if (!hash.equals("")) {
+            ByteBuffer endByteBuffer = ByteBuffer.wrap(content != null ? content : Files.readAllBytes(part));
+            if (!compareHash(endByteBuffer, hashAlgor, hash)) {
+                Files.deleteIfExists(part);
+                delta.set(false);
+                downloaded.set(0);
+                onResume();
+                return;
+            }
+        }
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+        DownloadRegistry.release(this);
+        DiskSpace.release(this);
+        onComplete();
+    }
+
     @Override
     public URI call() {
+        if (delta.get()) {
+            return callDelta();
+        }
         // 設定請求物件
         HttpRequest request = getHttpRequest(uri);
         // 回傳物件包含 Header 和 Body(InputStream)
-        HttpResponse<InputStream> response =
-                client.sendAsync(request, BodyHandlers.ofInputStream()).join();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.sendAsync(request, BodyHandlers.ofInputStream()).join();
+        } catch (CompletionException ex) {
+            // 連線失敗時 FutureTask 會吞掉例外，必須在這裡改成錯誤狀態並釋放登記
+            onError();
+            ex.printStackTrace();
+            return uri;
+        }
 
         // 確認回應代碼在 200 範圍
         if (response.statusCode() / 100 != 2) {
             onError();
+            closeQuietly(response.body());
+            return uri;
+        }
+        // 伺服器不支援 Range 時會回傳整個檔案，從頭寫起
+        if (response.statusCode() != 206) {
+            downloaded.set(0);
+        }
+        if (downloaded.get() == 0) {
+            received.set(0);
         }
-        // 取得下載內容大小
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        encoded.set(!encoding.equalsIgnoreCase("identity"));
+        // 取得下載內容大小，壓縮時為網路上的大小
         AtomicLong contentLength = new AtomicLong(response.headers()
-                .firstValueAsLong("Content-Length").getAsLong());
+                .firstValueAsLong("Content-Length").orElse(-1L));
 
-        // 設定 Size 屬性為下載內容大小
-        if (contentLength.get() >= 1) {
-            size.compareAndSet(-1L, contentLength.get());
+        if (encoded.get()) {
+            size.set(-1L);
+            wireSize.set(contentLength.get());
+            stateChanged();
+        } else if (contentLength.get() >= 1) {
+            // 設定 Size 屬性為下載內容大小
+            size.set(downloaded.get() + contentLength.get());
             stateChanged();
         } else {
             onError();
+            closeQuietly(response.body());
+            return uri;
         }
-        // 用 BufferedInputStream 包裝 InputStream，減少碎片寫入
-        // 並開啟檔案
-        try (BufferedInputStream bis = new BufferedInputStream(response.body());
-             RandomAccessFile raf = new RandomAccessFile(getFileName(uri), "rw")) {
-            // 指派到檔案下載的最後位置
-            raf.seek(downloaded.get());
+        try {
+            // 計算網路上的 byte 數後解碼，再用 BufferedInputStream 包裝，減少碎片寫入
+            // 並開啟檔案
+            InputStream wire = ContentDecoder.counting(response.body(), received::addAndGet);
+            // 空間不夠就關閉連線並排隊，只浪費 Header 的流量；
+            // 壓縮傳輸時解碼後的大小未知，先以網路上的大小預留，寫入時再逐步加大
+            AtomicLong reservation = new AtomicLong(encoded.get() ? wireSize.get() : size.get());
+            if (status == Statuses.DOWNLOADING && !DiskSpace.reserve(this, reservation.get())) {
+                wire.close();
+                onQueued();
+                return uri;
+            }
+            // Content-Length 顯示為小檔案時整個讀進記憶體，一次寫入
+            if (!encoded.get() && downloaded.get() == 0
+                    && size.get() > 0 && size.get() <= SMALL_FILE_SIZE) {
+                try (wire) {
+                    byte[] body = wire.readNBytes((int) size.get());
+                    if (body.length < size.get()) {
+                        throw new IOException("response ended early at " + body.length);
+                    }
+                    completeSmall(body);
+                }
+                return uri;
+            }
+            // wire 單獨列為資源，解碼標頭錯誤時也會關閉連線
+            try (wire;
+                 BufferedInputStream bis = new BufferedInputStream(
+                         ContentDecoder.decode(wire, encoding), MAX_BUFFER_SIZE.get());
+                 RandomAccessFile raf = new RandomAccessFile(part.toFile(), "rw")) {
+                // 已知大小時預先配置整個檔案，減少碎片與中繼資料更新；
+                // 重新下載時清掉舊內容，並指派到檔案下載的最後位置
+                if (size.get() > 0) {
+                    raf.setLength(size.get());
+                } else if (downloaded.get() == 0) {
+                    raf.setLength(0);
+                }
+                raf.seek(downloaded.get());
 
-            byte[] Buffer;
+                byte[] Buffer = new byte[MAX_BUFFER_SIZE.get()];
 
-            while (status == Statuses.DOWNLOADING) {
-                // 設定 byte[] 容量，最大為 MAX_BUFFER_SIZE
-                if (size.get() - downloaded.get() > MAX_BUFFER_SIZE.get()) {
-                    Buffer = new byte[MAX_BUFFER_SIZE.get()];
-                } else {
-                    Buffer = new byte[(int) (size.get() - downloaded.get())];
-                }
-                // 讀出 Buffer 並送到 Buffer 中
-                AtomicInteger read = new AtomicInteger(bis.read(Buffer));
+                while (status == Statuses.DOWNLOADING) {
+                    // 設定讀取長度，最大為 MAX_BUFFER_SIZE；解碼後大小未知時讀到結束為止
+                    int length = size.get() < 0 ? Buffer.length :
+                            (int) Math.min(Buffer.length, size.get() - downloaded.get());
+                    // 讀出 InputStream 並送到 Buffer 中
+                    AtomicInteger read = new AtomicInteger(length > 0 ? bis.read(Buffer, 0, length) : 0);
 
-                // 讀完 InputStream 則跳出 While 迴圈
-                if (read.get() <= 0) {
-                    break;
+                    // 讀完 InputStream 則跳出 While 迴圈
+                    if (read.get() <= 0) {
+                        break;
+                    }
+                    // 將 Buffer 寫入檔案
+                    raf.write(Buffer, 0, read.get());
+                    downloaded.addAndGet(read.get());
+                    // 超過預留量就加倍重新預留，不夠則排隊，之後以 Range 接著下載
+                    if (encoded.get() && downloaded.get() > reservation.get()) {
+                        reservation.set(downloaded.get() * 2);
+                        if (!DiskSpace.reserve(this, reservation.get())) {
+                            onQueued();
+                        }
+                    }
+                    stateChanged();
                 }
-                // 將 Buffer 寫入檔案
-                raf.write(Buffer, 0, read.get());
-                downloaded.addAndGet(read.get());
-                stateChanged();
             }
-            // 下載完成則改變狀態成 Complete
+            if (status == Statuses.CANCELLED) {
+                deletePart();
+            }
+            // 檔案關閉後才校驗並更名，下載完成則改變狀態成 Complete
             if (status == Statuses.DOWNLOADING) {
-                onComplete();
-                // 如果有 Hash 值就校驗，並決定是否重載
-                if (!hash.equals("")) {
-                    ByteBuffer endByteBuffer = ByteBuffer.wrap(
-                            Files.readAllBytes(Paths.get(getFileName(uri))));
-                    if (!compareHash(endByteBuffer, hashAlgor, hash)) {
-                        Files.deleteIfExists(Paths.get(getFileName(uri)));
-                        downloaded.set(0);
-                        onResume();
-                    }
+                // 檔案已預先配置成完整大小，只能用實際寫入的量判斷是否完成
+                if (size.get() > 0 && downloaded.get() < size.get()) {
+                    throw new IOException("response ended early at " + downloaded.get());
+                }
+                if (encoded.compareAndSet(true, false)) {
+                    size.set(downloaded.get());
                 }
+                finish(null);
             }
         } catch (IOException ex) {
             onError();
@@ -227,6 +581,15 @@ public class HttpDownload extends Observable implements Callable<URI> {
         return uri;
     }
 
+    // 放棄回應時關閉 Body，讓連線可以釋放
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
     private boolean compareHash(ByteBuffer file, @NotNull String hashAlgor, @NotNull String hash) {
         String fileHash = "";
         try {
@@ -240,6 +603,6 @@ public class HttpDownload extends Observable implements Callable<URI> {
 
     // 下載狀態列表
     public enum Statuses {
-        DOWNLOADING, PAUSED, COMPLETE, CANCELLED, ERROR
+        DOWNLOADING, PAUSED, QUEUED, COMPLETE, CANCELLED, ERROR
     }
 }
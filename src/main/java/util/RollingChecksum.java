@@ -0,0 +1,62 @@
+/*
+    This file is part of Nephren.
+
+    RollingChecksum.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+// rsync 式的弱校驗和，視窗往後滑一個 byte 時可以 O(1) 更新
+public class RollingChecksum {
+    private final int blockSize;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // 對整個區塊重新計算，不足 blockSize 的部分視為 0
+    public static int of(byte[] block, int offset, int length, int blockSize) {
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        checksum.reset(block, offset, length);
+        return checksum.value();
+    }
+
+    public void reset(byte[] block, int offset, int length) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = block[offset + i] & 0xff;
+            a += x;
+            b += (blockSize - i) * x;
+        }
+        a &= 0xffff;
+        b &= 0xffff;
+    }
+
+    // 移出最舊的 byte，移入新的 byte
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a = (a - x + (in & 0xff)) & 0xffff;
+        b = (b - blockSize * x + a) & 0xffff;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+    This file is part of Nephren.
+
+    SmallBodySubscriber.java
+    Copyright (C) 2020, 2021, 2023  Relius Wang
+
+    Nephren is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Nephren is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with Nephren.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/*
+    把 Body 收進記憶體，最多 limit bytes
+    Content-Length 超過時在 onSubscribe 就取消，不下載 Body；
+    沒有 Content-Length 而實際超過時也立刻取消，兩者都以 null 完成，由呼叫端改走一般下載
+ */
+public class SmallBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+    private final int limit;
+    private final long contentLength;
+    private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    private final ByteArrayOutputStream buffer;
+    private Flow.Subscription subscription;
+
+    private SmallBodySubscriber(int limit, long contentLength) {
+        this.limit = limit;
+        this.contentLength = contentLength;
+        this.buffer = new ByteArrayOutputStream(
+                contentLength >= 0 && contentLength <= limit ? (int) contentLength : 8192);
+    }
+
+    public static HttpResponse.BodyHandler<byte[]> handler(int limit) {
+        return info -> new SmallBodySubscriber(limit,
+                info.headers().firstValueAsLong("Content-Length").orElse(-1L));
+    }
+
+    @Override
+    public void onSubscribe(@NotNull Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (contentLength > limit) {
+            subscription.cancel();
+            result.complete(null);
+            return;
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(@NotNull List<ByteBuffer> items) {
+        if (result.isDone()) {
+            return;
+        }
+        for (ByteBuffer item : items) {
+            if (buffer.size() + item.remaining() > limit) {
+                subscription.cancel();
+                result.complete(null);
+                return;
+            }
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            buffer.writeBytes(bytes);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        result.complete(buffer.toByteArray());
+    }
+
+    @Override
+    public CompletionStage<byte[]> getBody() {
+        return result;
+    }
+}
@@ -31,4 +31,14 @@ public class StringUtil {
                 str.regionMatches(true, 0, prefix, 0, prefix.length()));
     }
 
+    // 不分大小寫的 contains，不產生新的字串
+    public static boolean containsIgnoreCase(@NotNull String str, @NotNull String part) {
+        for (int i = 0; i <= str.length() - part.length(); i++) {
+            if (str.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
@@ -21,13 +21,23 @@
 package view;
 
 import org.jetbrains.annotations.NotNull;
+import util.DownloadRegistry;
 import util.HttpDownload;
+import util.StringUtil;
 import util.URIParser;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
@@ -37,11 +47,21 @@ public class DDView extends JFrame implements Observer {
     private static final String[] hashAlgorStrings =
             {"MD5", "SHA-1", "SHA-256", "SHA-512"};
     private static final JLabel uriLabel = new JLabel("網址：");
+    private static final JLabel seedLabel = new JLabel("舊版檔案：");
+    private static final JLabel deltaIndexLabel = new JLabel("差異索引：");
+    private static final JLabel filterLabel = new JLabel("篩選：");
+    // 停止輸入後才套用篩選 (ms)
+    private static final int FILTER_DELAY = 300;
     private final JTextField addTextField;
     private final JComboBox<String> hashAlgorBox;
     private final JTextField hashTextField;
+    private final JTextField seedTextField;
+    private final JTextField deltaIndexTextField;
     private final DownloadsTableModel tableModel;
     private final JTable table;
+    private final TableRowSorter<DownloadsTableModel> sorter;
+    private final JTextField filterTextField;
+    private final Timer filterTimer;
     private final List<JButton> buttonList;
     private final AtomicBoolean clearing;
     private String hashAlgor = "MD5";
@@ -96,6 +116,31 @@ public class DDView extends JFrame implements Observer {
         c.fill = GridBagConstraints.BOTH;
         addListPanel.add(hashTextField, c);
 
+        // 選填：有舊版檔案和差異索引時只下載有變動的區塊
+        seedTextField = new JTextField(20);
+        deltaIndexTextField = new JTextField(20);
+        c.gridx = 0;
+        c.gridy = 2;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.NONE;
+        addListPanel.add(seedLabel, c);
+
+        c.gridx = 1;
+        c.gridwidth = 6;
+        c.fill = GridBagConstraints.BOTH;
+        addListPanel.add(seedTextField, c);
+
+        c.gridx = 0;
+        c.gridy = 3;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.NONE;
+        addListPanel.add(deltaIndexLabel, c);
+
+        c.gridx = 1;
+        c.gridwidth = 6;
+        c.fill = GridBagConstraints.BOTH;
+        addListPanel.add(deltaIndexTextField, c);
+
         var menuBar = new JMenuBar();
         var fileMenu = new JMenu("檔案");
         fileMenu.setMnemonic(KeyEvent.VK_F);
@@ -105,27 +150,61 @@ public class DDView extends JFrame implements Observer {
                     "請輸入網址和 Hash", JOptionPane.OK_CANCEL_OPTION);
             if (result == JOptionPane.OK_OPTION) {
                 hashText = hashTextField.getText();
-                actionAdd(addTextField.getText(), hashAlgor, hashText);
+                actionAdd(addTextField.getText(), hashAlgor, hashText,
+                        seedTextField.getText().trim(), deltaIndexTextField.getText().trim());
             }
             addTextField.setText("");
             hashTextField.setText("");
+            seedTextField.setText("");
+            deltaIndexTextField.setText("");
         });
         fileMenu.add(addItem);
 
+        var addListItem = new JMenuItem("加入清單", KeyEvent.VK_L);
+        addListItem.addActionListener(e -> {
+            var chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                actionAddList(chooser.getSelectedFile().toPath());
+            }
+        });
+        fileMenu.add(addListItem);
+
         var exitItem = new JMenuItem("結束", KeyEvent.VK_X);
         exitItem.addActionListener(e -> System.exit(0));
         fileMenu.add(exitItem);
         menuBar.add(fileMenu);
+
+        var settingMenu = new JMenu("設定");
+        settingMenu.setMnemonic(KeyEvent.VK_S);
+        var compressionItem = new JCheckBoxMenuItem("壓縮傳輸 (gzip, deflate)");
+        compressionItem.addActionListener(e -> HttpDownload.setCompression(compressionItem.isSelected()));
+        settingMenu.add(compressionItem);
+        menuBar.add(settingMenu);
         setJMenuBar(menuBar);
 
         tableModel = new DownloadsTableModel();
         table = new JTable(tableModel);
+        sorter = new TableRowSorter<>(tableModel);
+        // 列更新時重新套用篩選與排序，狀態改變的下載才會進出篩選結果
+        sorter.setSortsOnUpdates(true);
+        table.setRowSorter(sorter);
+        // 只重繪畫面上看得到的列
+        tableModel.setRowVisibility(row -> {
+            int viewRow = table.convertRowIndexToView(row);
+            if (viewRow < 0) {
+                return false;
+            }
+            Rectangle visible = table.getVisibleRect();
+            Rectangle cell = table.getCellRect(viewRow, 0, true);
+            return cell.y + cell.height > visible.y && cell.y < visible.y + visible.height;
+        });
         table.getSelectionModel().addListSelectionListener(e -> {
             if (selectedDownload != null) {
                 selectedDownload.deleteObserver(DDView.this);
             }
             if (!clearing.get() && table.getSelectedRow() > -1) {
-                selectedDownload = tableModel.getDownload(table.getSelectedRow());
+                selectedDownload = tableModel.getDownload(
+                        table.convertRowIndexToModel(table.getSelectedRow()));
                 selectedDownload.addObserver(DDView.this);
                 updateButtons();
             }
@@ -134,7 +213,7 @@ public class DDView extends JFrame implements Observer {
         table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         var render = new ProgressRender(0, 100);
         render.setStringPainted(true);
-        table.setDefaultRenderer(JProgressBar.class, render);
+        table.getColumnModel().getColumn(DownloadsTableModel.PROGRESS_COLUMN).setCellRenderer(render);
 
         table.setRowHeight((int) render.getPreferredSize().getHeight());
 
@@ -143,6 +222,30 @@ public class DDView extends JFrame implements Observer {
         downloadsPanel.setLayout(new BorderLayout());
         downloadsPanel.add(new JScrollPane(table), BorderLayout.CENTER);
 
+        filterTextField = new JTextField(20);
+        filterTimer = new Timer(FILTER_DELAY, e -> applyFilter());
+        filterTimer.setRepeats(false);
+        filterTextField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+        });
+        var filterPanel = new JPanel(new BorderLayout());
+        filterPanel.add(filterLabel, BorderLayout.WEST);
+        filterPanel.add(filterTextField, BorderLayout.CENTER);
+        downloadsPanel.add(filterPanel, BorderLayout.NORTH);
+
         var buttonsPanel = new JPanel();
         buttonList = List.of(new JButton("暫停")
                 , new JButton("繼續")
@@ -168,6 +271,9 @@ public class DDView extends JFrame implements Observer {
                 case PAUSED -> buttonList.forEach(b ->
                         b.setEnabled(b.getText().equals("繼續")
                                 || b.getText().equals("取消")));
+                case QUEUED -> buttonList.forEach(b ->
+                        b.setEnabled(b.getText().equals("繼續")
+                                || b.getText().equals("取消")));
                 case ERROR -> buttonList.forEach(b ->
                         b.setEnabled(b.getText().equals("繼續")
                                 || b.getText().equals("清理")));
@@ -178,16 +284,127 @@ public class DDView extends JFrame implements Observer {
         }
     }
 
-    private void actionAdd(@NotNull String uriString, String hashAlgor, String hash) {
+    private void actionAdd(@NotNull String uriString, String hashAlgor, String hash,
+                           @NotNull String seed, @NotNull String deltaIndex) {
         URI verifiedUri = URIParser.apply(uriString);
         if (verifiedUri != null) {
-            tableModel.addDownload(new HttpDownload(verifiedUri, hashAlgor, hash));
+            Path seedPath = null;
+            URI deltaIndexUri = null;
+            if (!seed.isEmpty() || !deltaIndex.isEmpty()) {
+                seedPath = parsePath(seed);
+                deltaIndexUri = parseDeltaIndex(deltaIndex);
+                if (seedPath == null || deltaIndexUri == null) {
+                    JOptionPane.showMessageDialog(this,
+                            "差異下載需要舊版檔案和差異索引", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+            }
+            // 重複的網址直接共用進行中的下載，並選取該列
+            HttpDownload download = DownloadRegistry.acquire(
+                    verifiedUri, hashAlgor, hash, -1L, seedPath, deltaIndexUri);
+            int row = tableModel.indexOf(download);
+            if (row < 0) {
+                tableModel.addDownload(download);
+            } else if (table.convertRowIndexToView(row) > -1) {
+                int viewRow = table.convertRowIndexToView(row);
+                table.setRowSelectionInterval(viewRow, viewRow);
+            }
         } else {
             JOptionPane.showMessageDialog(this,
                     "無效的下載網址", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    private static Path parsePath(@NotNull String path) {
+        try {
+            return path.isEmpty() ? null : Path.of(path);
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+    }
+
+    // 差異索引可以是 http(s) 網址或本機檔案路徑
+    private static URI parseDeltaIndex(@NotNull String deltaIndex) {
+        URI uri = URIParser.apply(deltaIndex);
+        if (uri != null) {
+            return uri;
+        }
+        Path path = parsePath(deltaIndex);
+        return path != null ? path.toAbsolutePath().toUri() : null;
+    }
+
+    /*
+        清單每行一個網址，可在後面加上檔案大小 (bytes) 作為提示，
+        再加上舊版檔案與差異索引則以差異下載進行 (路徑不可含空白)：
+            https://example.com/a.json 2048
+            https://example.com/disk.img - old/disk.img https://example.com/disk.img.delta
+        大小不明時以 "-" 代替；已知是小檔案的下載會走非同步的快速路徑
+     */
+    private void actionAddList(@NotNull Path listFile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(listFile);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this,
+                    "無法讀取清單", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        List<HttpDownload> downloads = new ArrayList<>(lines.size());
+        int invalid = 0;
+        for (String line : lines) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            URI verifiedUri = URIParser.apply(fields[0]);
+            if (verifiedUri == null) {
+                invalid++;
+                continue;
+            }
+            long sizeHint = -1L;
+            if (fields.length > 1) {
+                try {
+                    sizeHint = Long.parseLong(fields[1]);
+                } catch (NumberFormatException ignored) {
+                    // 沒有大小提示
+                }
+            }
+            Path seedPath = null;
+            URI deltaIndexUri = null;
+            if (fields.length > 3) {
+                seedPath = parsePath(fields[2]);
+                deltaIndexUri = parseDeltaIndex(fields[3]);
+                if (seedPath == null || deltaIndexUri == null) {
+                    invalid++;
+                    continue;
+                }
+            }
+            downloads.add(DownloadRegistry.acquire(
+                    verifiedUri, hashAlgor, "", sizeHint, seedPath, deltaIndexUri));
+        }
+        tableModel.addDownloads(downloads);
+        if (invalid > 0) {
+            JOptionPane.showMessageDialog(this,
+                    invalid + " 個無效的下載網址", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // 依網址或狀態篩選，不分大小寫
+    private void applyFilter() {
+        String text = filterTextField.getText().trim();
+        if (text.isEmpty()) {
+            sorter.setRowFilter(null);
+            return;
+        }
+        sorter.setRowFilter(new RowFilter<>() {
+            @Override
+            public boolean include(Entry<? extends DownloadsTableModel, ? extends Integer> entry) {
+                return StringUtil.containsIgnoreCase(entry.getStringValue(0), text)
+                        || StringUtil.containsIgnoreCase(entry.getStringValue(3), text);
+            }
+        });
+    }
+
     private void actionDownloading(@NotNull String status) {
         switch (status) {
             case "暫停" -> {
@@ -203,8 +420,12 @@ public class DDView extends JFrame implements Observer {
                 updateButtons();
             }
             case "清理" -> {
+                // 清理失敗的下載時一併刪除暫存檔，釋出檔名
+                if (selectedDownload.getStatus() == HttpDownload.Statuses.ERROR) {
+                    selectedDownload.onCancel();
+                }
                 clearing.compareAndSet(false, true);
-                tableModel.clearDownload(table.getSelectedRow());
+                tableModel.clearDownload(table.convertRowIndexToModel(table.getSelectedRow()));
                 clearing.compareAndSet(true, false);
                 selectedDownload = null;
                 updateButtons();
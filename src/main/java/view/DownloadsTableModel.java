@@ -22,92 +22,219 @@ package view;
 
 import util.HttpDownload;
 
-import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.table.AbstractTableModel;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
 
 public class DownloadsTableModel extends AbstractTableModel implements Observer {
-    private static final List<Map<String, Class<?>>> column =
-            List.of(Map.of("網址", String.class),
-                    Map.of("大小", String.class),
-                    Map.of("進度", JProgressBar.class),
-                    Map.of("狀態", String.class));
-    private static final String zeroOver = "0 Bytes";
-    private final List<HttpDownload> downloadList =
-            Collections.synchronizedList(new ArrayList<>());
+    private static final String[] columnNames = {"網址", "大小", "進度", "狀態"};
+    private static final Class<?>[] columnClasses =
+            {String.class, ByteCount.class, Integer.class, String.class};
+    // 進度欄位，值為 0 ~ 100 的整數，排序時依數值比較
+    public static final int PROGRESS_COLUMN = 2;
+    private static final char[] units = {'K', 'M', 'G', 'T', 'P', 'E'};
+    private static final ByteCount zeroOver = new ByteCount(-1L, "0 Bytes");
+    // 合併重繪的間隔 (ms)
+    private static final int REFRESH_INTERVAL = 200;
+    // 只在 EDT 上修改
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<HttpDownload, Row> rowOf = new ConcurrentHashMap<>();
+    // 下載執行緒標記為變動、等待下次重繪的列
+    private final Queue<Row> pending = new ConcurrentLinkedQueue<>();
+    private IntPredicate rowVisible = row -> true;
 
     public DownloadsTableModel() {
         super();
+        new Timer(REFRESH_INTERVAL, e -> flush()).start();
     }
 
     // Bytes 轉換成 KiB, MiB, GiB 等人類可讀單位
     public static String humanReadableByteCountBin(long bytes) {
-        AtomicLong absB = bytes == Long.MIN_VALUE ? new AtomicLong(Long.MAX_VALUE) : new AtomicLong(Math.abs(bytes));
-        if (absB.get() < 1024) {
+        long absB = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
+        if (absB < 1024) {
             return bytes + " B";
         }
-        long value = absB.get();
-        CharacterIterator ci = new StringCharacterIterator("KMGTPE");
-        for (int i = 40; i >= 0 && absB.get() > 0xfffccccccccccccL >> i; i -= 10) {
+        long value = absB;
+        int unit = 0;
+        for (int i = 40; i >= 0 && absB > 0xfffccccccccccccL >> i; i -= 10) {
             value >>= 10;
-            ci.next();
+            unit++;
         }
         value *= Long.signum(bytes);
-        return String.format("%.1f %ciB", value / 1024.0, ci.current());
+        return String.format("%.1f %ciB", value / 1024.0, units[unit]);
+    }
+
+    // 由畫面提供「此 model 列目前是否看得到」，看不到的列不發出重繪
+    public void setRowVisibility(IntPredicate rowVisible) {
+        this.rowVisible = rowVisible;
     }
 
     public void addDownload(HttpDownload download) {
+        Row row = new Row(download, rows.size());
+        rows.add(row);
+        rowOf.put(download, row);
         download.addObserver(this);
-        downloadList.add(download);
-        fireTableRowsInserted(getRowCount() - 1, getRowCount() - 1);
+        fireTableRowsInserted(row.index, row.index);
+    }
+
+    // 一次加入多筆，只發出一次插入事件
+    public void addDownloads(Collection<HttpDownload> downloads) {
+        int first = rows.size();
+        for (HttpDownload download : downloads) {
+            if (!rowOf.containsKey(download)) {
+                Row row = new Row(download, rows.size());
+                rows.add(row);
+                rowOf.put(download, row);
+                download.addObserver(this);
+            }
+        }
+        if (rows.size() > first) {
+            fireTableRowsInserted(first, rows.size() - 1);
+        }
     }
 
     public HttpDownload getDownload(int rowIndex) {
-        return downloadList.get(rowIndex);
+        return rows.get(rowIndex).download;
+    }
+
+    public int indexOf(HttpDownload download) {
+        Row row = rowOf.get(download);
+        return row != null ? row.index : -1;
     }
 
     public void clearDownload(int rowIndex) {
-        downloadList.remove(rowIndex);
+        Row row = rows.remove(rowIndex);
+        row.download.deleteObserver(this);
+        rowOf.remove(row.download);
+        row.index = -1;
+        for (int i = rowIndex; i < rows.size(); i++) {
+            rows.get(i).index = i;
+        }
         fireTableRowsDeleted(rowIndex, rowIndex);
     }
 
+    @Override
     public String getColumnName(int columnIndex) {
-        return column.get(columnIndex).keySet().stream().findFirst().get();
+        return columnNames[columnIndex];
     }
 
+    @Override
     public Class<?> getColumnClass(int columnIndex) {
-        return column.get(columnIndex).values().stream().findFirst().get();
+        return columnClasses[columnIndex];
     }
 
     @Override
     public int getRowCount() {
-        return downloadList.size();
+        return rows.size();
     }
 
     @Override
     public int getColumnCount() {
-        return column.size();
+        return columnNames.length;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        HttpDownload download = downloadList.get(rowIndex);
+        Row row = rows.get(rowIndex);
+        // 只有變動過的列才重新計算
+        if (row.dirty.getAndSet(false)) {
+            row.refresh();
+        }
         return switch (columnIndex) {
-            case 0 -> download.getUri();
-            case 1 -> download.getSize() != -1L ?
-                    humanReadableByteCountBin(download.getSize()) : zeroOver;
-            case 2 -> download.getProgress();
-            case 3 -> download.getStatus().name();
+            case 0 -> row.uri;
+            case 1 -> row.size;
+            case 2 -> row.progress;
+            case 3 -> row.status;
             default -> "";
         };
     }
 
+    // 由下載執行緒呼叫，只做標記，實際重繪交給 EDT 上的 Timer
     @Override
     public void update(Observable o, Object arg) {
-        int index = downloadList.indexOf(o);
-        fireTableRowsUpdated(index, index);
+        Row row = rowOf.get(o);
+        if (row == null) {
+            return;
+        }
+        row.dirty.set(true);
+        // 每列在佇列中最多一次，flush 取出後才能再排入
+        if (!row.queued.getAndSet(true)) {
+            pending.add(row);
+        }
+    }
+
+    // 將看得到的變動列合併成連續範圍後發出重繪
+    private void flush() {
+        List<Integer> changed = new ArrayList<>();
+        for (Row row; (row = pending.poll()) != null; ) {
+            row.queued.set(false);
+            // 狀態改變很少見，一律發出讓篩選與排序重新判斷；進度只重繪看得到的列
+            if (row.index >= 0 && (row.shownStatus != row.download.getStatus()
+                    || rowVisible.test(row.index))) {
+                changed.add(row.index);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        Collections.sort(changed);
+        int first = changed.get(0);
+        int last = first;
+        for (int i = 1; i < changed.size(); i++) {
+            if (changed.get(i) != last + 1) {
+                fireTableRowsUpdated(first, last);
+                first = changed.get(i);
+            }
+            last = changed.get(i);
+        }
+        fireTableRowsUpdated(first, last);
+    }
+
+    // 大小欄位：顯示格式化字串，排序時依 byte 數比較
+    public record ByteCount(long bytes, String text) implements Comparable<ByteCount> {
+        @Override
+        public int compareTo(ByteCount o) {
+            return Long.compare(bytes, o.bytes);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    // 一列的顯示快照，下載有變動時才失效
+    private static final class Row {
+        private final HttpDownload download;
+        private final String uri;
+        private final AtomicBoolean dirty = new AtomicBoolean(true);
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private int index;
+        private ByteCount size = zeroOver;
+        private Integer progress = 0;
+        private String status = "";
+        private HttpDownload.Statuses shownStatus;
+
+        private Row(HttpDownload download, int index) {
+            this.download = download;
+            this.uri = download.getUri();
+            this.index = index;
+        }
+
+        private void refresh() {
+            long bytes = download.getSize();
+            // 大小通常不變，變了才重新格式化
+            if (bytes != size.bytes()) {
+                size = bytes != -1L ? new ByteCount(bytes, humanReadableByteCountBin(bytes)) : zeroOver;
+            }
+            // 壓縮傳輸時大小未知，進度由下載端以網路上的 byte 數計算
+            progress = (int) Math.max(0, Math.min(100, Math.round(download.getProgress())));
+            shownStatus = download.getStatus();
+            status = shownStatus.name();
+        }
     }
 }
@@ -32,7 +32,8 @@ public class ProgressRender extends JProgressBar implements TableCellRenderer {
 
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
-        setValue((int) Math.round((Double) value));
+        // model 已換算成 0 ~ 100 的整數
+        setValue(value instanceof Integer progress ? progress : 0);
         return this;
     }
 }